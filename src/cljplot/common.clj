@@ -14,33 +14,93 @@
 (set! *unchecked-math* :warn-on-boxed)
 (m/use-primitive-operators)
 
+(def ^:const ^double default-oversize 100.0)
+
+(defn- viewport->clip
+  "Intersect viewport (relative to chart position) with `fw`x`fh` canvas moved by `shift`. Returns offset and size of visible part."
+  [[^double vx ^double vy ^double vw ^double vh] ^double shift ^double fw ^double fh]
+  (let [x1 (m/max 0.0 (m/floor (+ vx shift)))
+        y1 (m/max 0.0 (m/floor (+ vy shift)))
+        x2 (m/min fw (m/ceil (+ vx vw shift)))
+        y2 (m/min fh (m/ceil (+ vy vh shift)))]
+    [x1 y1 (m/max 1.0 (- x2 x1)) (m/max 1.0 (- y2 y1))]))
+
 (defn graph-canvas
-  "Create canvas to draw a chart on"
+  "Create canvas to draw a chart on.
+
+  When `:viewport` (`[x y w h]` relative to chart position) is given, only visible part of the canvas is allocated."
   ([graph-conf] (graph-canvas graph-conf false))
-  ([{:keys [w h orientation rendering-hint ^double oversize] :or {orientation :top oversize 100}} highest?]
+  ([{:keys [w h orientation rendering-hint ^double oversize viewport] :or {orientation :top oversize default-oversize}} highest?]
    (let [[^int cw ^int ch] (if (#{:left :right} orientation) [h w] [w h])
          canvas-shift (/ oversize 2)
          canvas-shift- (- canvas-shift)
-         c (c2d/canvas (+ oversize cw) (+ oversize ch) (if rendering-hint
-                                                         rendering-hint
-                                                         (if highest? :highest :high)))]
-     {:canvas c
-      :anchor [canvas-shift- canvas-shift-]
-      :shift [canvas-shift canvas-shift]
-      :w w
-      :h h})))
+         fw (+ oversize cw)
+         fh (+ oversize ch)
+         [^double ox ^double oy ^double vw ^double vh] (if viewport
+                                                         (viewport->clip viewport canvas-shift fw fh)
+                                                         [0.0 0.0 fw fh])
+         c (c2d/canvas vw vh (if rendering-hint
+                               rendering-hint
+                               (if highest? :highest :high)))]
+     (cond-> {:canvas c
+              :anchor [(+ canvas-shift- ox) (+ canvas-shift- oy)]
+              :shift [canvas-shift canvas-shift]
+              :w w
+              :h h}
+       viewport (assoc :offset [ox oy] :size [fw fh])))))
 
 (defn canvas-orientation
   "Convert layout orientation to canvas orientations"
   [orient]
   (get {:bottom :top-left- :top :bottom-left+ :left :bottom-right+ :right :bottom-left-} orient :bottom-left+))
 
+(defn- shift-oriented-canvas
+  "Move oriented canvas to show part of bigger `[fw fh]` canvas starting at `[ox oy]` pixel.
+  Orientation was calculated for actual canvas size, flipped axes are corrected by size difference."
+  [c [^double ox ^double oy] [^double fw ^double fh]]
+  (let [^java.awt.Graphics2D g (.graphics ^clojure2d.core.Canvas c)
+        t (.getTransform g)
+        dx (if (neg? (+ (.getScaleX t) (.getShearX t))) (- fw ^long (c2d/width c)) 0.0)
+        dy (if (neg? (+ (.getShearY t) (.getScaleY t))) (- fh ^long (c2d/height c)) 0.0)]
+    (.setTransform g (doto (java.awt.geom.AffineTransform/getTranslateInstance (- dx ox) (- dy oy))
+                       (.concatenate t)))))
+
 (defn apply-body
   [canv orient f]
   (c2d/with-oriented-canvas orient [c (:canvas canv)]
+    (when-let [offset (:offset canv)]
+      (shift-oriented-canvas c offset (:size canv)))
     (c2d/translate c (:shift canv))
     (f c)))
 
+(defn visible-pixels
+  "Range of chart pixels `[x1 y1 x2 y2]` (`x2` and `y2` exclusive, clamped to `w`x`h`) visible on the oriented canvas.
+  Whole chart when canvas is not clipped to the viewport."
+  [c w h]
+  (let [^java.awt.Graphics2D g (.graphics ^clojure2d.core.Canvas c)
+        b (-> (.createInverse (.getTransform g))
+              (.createTransformedShape (java.awt.Rectangle. 0 0 (int (c2d/width c)) (int (c2d/height c))))
+              (.getBounds2D))]
+    [(long (m/max 0.0 (m/floor (.getMinX b))))
+     (long (m/max 0.0 (m/floor (.getMinY b))))
+     (long (m/min (double w) (m/ceil (.getMaxX b))))
+     (long (m/min (double h) (m/ceil (.getMaxY b))))]))
+
+(defn cached
+  "Value of `(f)` stored under `k` in `cache` atom. Without cache `f` is just called.
+  In tiled rendering `render-graph` is called for every tile, cache keeps values which depend on the whole chart."
+  [cache k f]
+  (if cache
+    (if-let [[_ v] (find @cache k)]
+      v
+      (let [v (f)]
+        (swap! cache assoc k v)
+        v))
+    (f)))
+
+;; charts which need full size buffers
+(def untileable-charts #{:cloud :density-2d :contour-2d})
+
 (defmacro do-graph
   "Wrap canvas creation and orientation."
   {:style/indent 2}
@@ -91,7 +91,8 @@
                                     :annotate-fmt str}
                           :complex {:colorspace :HSB
                                     :permutation 0
-                                    :wrap-method :log2}
+                                    :wrap-method :log2
+                                    :progressive nil}
                           :scalar {:gradient (c/gradient [:black :white])
                                    :wrap-method nil}
                           :field {:color (c/color (c/darken dblue) 50)
@@ -102,13 +103,15 @@
                           :vector {:color (c/set-alpha dblue 200)
                                    :size 20
                                    :grid :square
-                                   :scale 0.8}
+                                   :scale 0.8
+                                   :progressive nil}
                           :trace {:color (c/set-alpha dblue 30)
                                   :step 0.01
                                   :length 200
                                   :points 10000
                                   :generator :r2
-                                  :jitter 0.1}
+                                  :jitter 0.1
+                                  :progressive nil}
                           :histogram {:color blue
                                       :palette (cycle (c/palette :category20))
                                       :stroke stroke-common
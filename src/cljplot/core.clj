@@ -1,5 +1,6 @@
 (ns cljplot.core
   (:require [clojure2d.core :refer [next-filename]]
+            [clojure.java.io :as io]
             [clojure2d.extra.utils :as utils]
             [cljplot.impl.histogram]
             [cljplot.build :as b]
@@ -11,7 +12,11 @@
             [cljplot.impl.label]
             [cljplot.impl.math]
             [cljplot.impl.free]
-            [cljplot.impl.time-series]))
+            [cljplot.impl.time-series])
+  (:import [java.io File]
+           [java.awt.image RenderedImage]
+           [java.nio.file CopyOption Files StandardCopyOption]
+           [javax.imageio IIOImage ImageIO ImageWriteParam ImageWriter]))
 
 (defn save
   "Save `chart`."
@@ -20,6 +25,37 @@
   ([chart]
    (clojure2d.core/save chart (next-filename "charts/" ".png"))))
 
+(defn save-tiled
+  "Render lattice tile by tile directly to the file. Image format is taken from file extension, it should support ARGB images (png, tif).
+
+  Accepts processed series and `render-lattice` configuration with optional `:tile-width` and `:tile-height`.
+  Whole image is never kept in memory, when format supports it (TIFF) file is written as tiled image.
+  Image is written to temporary file first, target file is replaced only when rendering succeeds."
+  [srs conf name]
+  (let [ext (second (re-find #"\.(\w+)$" name))
+        _ (assert ext (str "File name should have an extension: " name))
+        ^ImageWriter writer (first (iterator-seq (ImageIO/getImageWritersBySuffix ext)))
+        _ (assert writer (str "No image writer for file: " name))
+        ^RenderedImage image (r/render-lattice-tiled srs conf)
+        _ (assert (.canEncodeImage (.getOriginatingProvider writer) image)
+                  (str "Image writer for " ext " can't encode ARGB image, use png or tif: " name))
+        param (.getDefaultWriteParam writer)
+        file (io/file name)
+        _ (io/make-parents file)
+        tmp (File/createTempFile "cljplot" (str "." ext) (.getParentFile (.getAbsoluteFile file)))]
+    (when (.canWriteTiles param)
+      (.setTilingMode param ImageWriteParam/MODE_EXPLICIT)
+      (.setTiling param (.getTileWidth image) (.getTileHeight image) 0 0))
+    (try
+      (with-open [os (ImageIO/createImageOutputStream tmp)]
+        (.setOutput writer os)
+        (.write writer nil (IIOImage. image nil nil) param))
+      (Files/move (.toPath tmp) (.toPath file) (into-array CopyOption [StandardCopyOption/REPLACE_EXISTING]))
+      (finally
+        (.dispose writer)
+        (io/delete-file tmp true)))
+    name))
+
 (def show utils/show-image)
 
 ;;
@@ -43,28 +43,107 @@
     :sigmoid (m/sigmoid v)
     (m/frac v)))
 
-(defmethod common/render-graph :complex [_ f {:keys [colorspace permutation wrap-method]} {:keys [w h x y] :as chart-data}]
+(defmacro ^:private do-visible-pixels
+  "Iterate over chart pixels visible on canvas `c` (see `common/visible-pixels`)."
+  [[x y] [c w h] & body]
+  `(let [[x1# y1# x2# y2#] (common/visible-pixels ~c ~w ~h)
+         x2# (long x2#)
+         y1# (long y1#)
+         y2# (long y2#)]
+     (loop [~x (long x1#)]
+       (when (< ~x x2#)
+         (loop [~y y1#]
+           (when (< ~y y2#)
+             ~@body
+             (recur (inc ~y))))
+         (recur (inc ~x))))))
+
+(defn- pass-stride
+  "Pixel stride for given pass, last pass has stride 1. Stride is capped at 2^16, earlier passes with the same stride draw nothing new."
+  ^long [^long passes ^long pass]
+  (bit-shift-left 1 (min (- passes pass 1) 16)))
+
+(defn- pass-subset
+  "Every `passes`-th element starting from `pass`. Each pass covers whole domain."
+  [coll ^long passes ^long pass]
+  (take-nth passes (drop pass coll)))
+
+(def ^:private ^:const ^long pass-chunk 256)
+
+(defn- progressive-graph
+  "Render chart in consecutive passes, from coarse to fine.
+
+  `pass-fn` is called with canvas and a map of: `:pass`, `:passes`, `:mapper` (`pmap` or `map`) and `:stop?` predicate.
+  After every pass `:on-pass` callback gets canvas map and pass number. It's called on rendering thread while canvas is still being drawn, copy image if needed.
+  Rendering ends when all passes are done or `:budget` (in milliseconds) is exhausted. `stop?` is checked during the pass, so the pass in which budget runs out is cut short (and reported as such). First pass is always finished.
+
+  `progressive` can be `true` (defaults) or a map. Without it chart is rendered sequentially in one pass."
+  [chart-data highest? progressive pass-fn]
+  (let [{:keys [^long passes budget on-pass parallel?]} (if progressive
+                                                          (merge {:passes 4 :parallel? true}
+                                                                 (when (map? progressive) progressive))
+                                                          {:passes 1 :parallel? false})
+        _ (assert (and (integer? passes) (pos? passes)) (str "Number of passes should be positive integer, got: " passes))
+        canv (common/graph-canvas chart-data highest?)
+        deadline (when budget (+ (System/nanoTime) (* 1000000 (long budget))))
+        stop? (if deadline
+                (fn [] (> (System/nanoTime) (long deadline)))
+                (constantly false))
+        mapper (if parallel? pmap map)]
+    (common/apply-body canv (common/canvas-orientation (:orientation chart-data))
+                       (fn [c]
+                         (loop [pass 0]
+                           (pass-fn c {:pass pass
+                                       :passes passes
+                                       :mapper mapper
+                                       :stop? (if (zero? pass) (constantly false) stop?)})
+                           (when on-pass (on-pass canv pass))
+                           (when (and (< (inc pass) passes) (not (stop?)))
+                             (recur (inc pass))))))
+    canv))
+
+(defmethod common/render-graph :complex [_ f {:keys [colorspace permutation wrap-method progressive]} {:keys [^int w ^int h x y] :as chart-data}]
   (let [permutation (int permutation)
         iscale-x (:inverse (:scale x))
         iscale-y (:inverse (:scale y))
         dw (double w)
         dh (double h)
-        from-cs (or (second (c/colorspaces* colorspace)) c/from-HSB*)]
-
-    (common/do-graph chart-data false
-                     (dotimes [x w]
-                       (dotimes [y h]
-                         (let [xx (/ x dw)
-                               yy (/ y dh)
-                               sx (iscale-x xx)
-                               sy (iscale-y yy)
-                               fv (f (v/vec2 sx sy))
-                               angle (m/norm (cx/arg fv) m/-PI m/PI 0.0 255.0)
-                               mag (cx/abs fv)
-                               mag (* 255.0 (wrap wrap-method mag))
-                               col (from-cs (permutation->color permutation angle (- 255.0 (/ (- 255.0 mag) 4.0)) mag))]
-                           (c2d/set-color c col)
-                           (c2d/rect c x y 1 1)))))))
+        from-cs (or (second (c/colorspaces* colorspace)) c/from-HSB*)
+        pixel-color (fn [^long x ^long y]
+                      (let [xx (/ x dw)
+                            yy (/ y dh)
+                            sx (iscale-x xx)
+                            sy (iscale-y yy)
+                            fv (f (v/vec2 sx sy))
+                            angle (m/norm (cx/arg fv) m/-PI m/PI 0.0 255.0)
+                            mag (cx/abs fv)
+                            mag (* 255.0 (wrap wrap-method mag))]
+                        (from-cs (permutation->color permutation angle (- 255.0 (/ (- 255.0 mag) 4.0)) mag))))]
+
+    (if-not progressive
+      (common/do-graph chart-data false
+                       (do-visible-pixels [x y] [c w h]
+                         (c2d/set-color c (pixel-color x y))
+                         (c2d/rect c x y 1 1)))
+      ;; every pass shrinks the stride and evaluates only pixels not visited before
+      (progressive-graph chart-data false progressive
+                         (fn [c {:keys [^long pass ^long passes mapper stop?]}]
+                           (let [s (pass-stride passes pass)
+                                 ;; stride of previous pass, its pixels are already done
+                                 ps (if (pos? pass) (pass-stride passes (dec pass)) 0)
+                                 [^long x1 ^long y1 x2 y2] (common/visible-pixels c w h)
+                                 rows (mapper (fn [^long y]
+                                                (when-not (stop?)
+                                                  (let [done-y? (and (pos? ps) (zero? (rem y ps)))]
+                                                    (vec (for [^long x (range (* s (quot x1 s)) x2 s)
+                                                               :when (not (and done-y? (zero? (rem x ps))))]
+                                                           [x y (pixel-color x y)])))))
+                                              (range (* s (quot y1 s)) y2 s))]
+                             (doseq [row rows
+                                     [^long x ^long y col] row]
+                               (c2d/set-color c col)
+                               ;; blocks at the edges are clamped to the chart
+                               (c2d/rect c x y (min s (- w x)) (min s (- h y))))))))))
 
 ;; scalar
 
@@ -77,43 +156,66 @@
         dh (double h)]
 
     (common/do-graph chart-data false
-                     (dotimes [x w]
-                       (dotimes [y h]
-                         (let [xx (/ x dw)
-                               yy (/ y dh)
-                               sx (iscale-x xx)
-                               sy (iscale-y yy) 
-                               v (wrap wrap-method (f (v/vec2 sx sy)))]
-                           (c2d/set-color c (gradient v))
-                           (c2d/rect c x y 1 1)))))))
+                     (do-visible-pixels [x y] [c w h]
+                       (let [xx (/ x dw)
+                             yy (/ y dh)
+                             sx (iscale-x xx)
+                             sy (iscale-y yy) 
+                             v (wrap wrap-method (f (v/vec2 sx sy)))]
+                         (c2d/set-color c (gradient v))
+                         (c2d/rect c x y 1 1))))))
 
 ;;
 
 (defmethod common/data-extent :function-2d [_ d c] (common/data-extent :complex d c))
 
-(defmethod common/render-graph :function-2d [_ f {:keys [gradient]} {:keys [^int w ^int h x y] :as chart-data}]
+(defn- function-2d-extent
+  "Minimum and maximum of the function over all chart pixels, values are not stored."
+  [f iscale-x iscale-y w h]
+  (let [w (long w)
+        n (* w (long h))
+        dw (double w)
+        dh (double h)]
+    (loop [i 0
+           mn ##Inf
+           mx ##-Inf]
+      (if (< i n)
+        (let [^double v (f (iscale-x (/ (rem i w) dw)) (iscale-y (/ (quot i w) dh)))]
+          (recur (inc i) (m/min mn v) (m/max mx v)))
+        [mn mx]))))
+
+(defmethod common/render-graph :function-2d [_ f {:keys [gradient]} {:keys [^int w ^int h x y viewport cache cache-key] :as chart-data}]
   (let [iscale-x (:inverse (:scale x))
         iscale-y (:inverse (:scale y))
         dw (double w)
-        dh (double h)
-        buffer (double-array (* w h))]
-
-    (dotimes [y h]
-      (let [off (* y w)]
-        (dotimes [x w]
-          (let [xx (/ x dw)
-                yy (/ y dh)
-                ^double v (f (iscale-x xx) (iscale-y yy))]
-            (aset buffer (+ off x) v)))))
+        dh (double h)]
 
-    (let [[mnz mxz] (stats/extent buffer)]
-      (common/do-graph chart-data false
-                       (dotimes [y h]
-                         (let [off (* y w)]
-                           (dotimes [x w]
-                             (let [v (aget buffer (+ off x))]
-                               (c2d/set-color c (gradient (m/norm v mnz mxz)))
-                               (c2d/rect c x y 1 1)))))))))
+    (if viewport
+      ;; tiled: extent is calculated once for the whole chart, only visible pixels are evaluated
+      (let [[^double mnz ^double mxz] (common/cached cache [cache-key :extent] #(function-2d-extent f iscale-x iscale-y w h))]
+        (common/do-graph chart-data false
+                         (do-visible-pixels [x y] [c w h]
+                           (let [^double v (f (iscale-x (/ x dw)) (iscale-y (/ y dh)))]
+                             (c2d/set-color c (gradient (m/norm v mnz mxz)))
+                             (c2d/rect c x y 1 1)))))
+      (let [buffer (double-array (* w h))]
+
+        (dotimes [y h]
+          (let [off (* y w)]
+            (dotimes [x w]
+              (let [xx (/ x dw)
+                    yy (/ y dh)
+                    ^double v (f (iscale-x xx) (iscale-y yy))]
+                (aset buffer (+ off x) v)))))
+
+        (let [[mnz mxz] (stats/extent buffer)]
+          (common/do-graph chart-data false
+                           (dotimes [y h]
+                             (let [off (* y w)]
+                               (dotimes [x w]
+                                 (let [v (aget buffer (+ off x))]
+                                   (c2d/set-color c (gradient (m/norm v mnz mxz)))
+                                   (c2d/rect c x y 1 1)))))))))))
 
 
 ;; contour
@@ -169,35 +271,40 @@
 
 (defmethod common/data-extent :vector [_ f c] (common/data-extent :complex f c))
 
-(defmethod common/render-graph :vector [_ f {:keys [^double size grid color ^double scale]} {:keys [^int w ^int h x y] :as chart-data}]
+(defmethod common/render-graph :vector [_ f {:keys [^double size grid color ^double scale progressive]} {:keys [^int w ^int h x y] :as chart-data}]
   (let [scale-x (:scale x)
         scale-y (:scale y)
         iscale-x (:inverse scale-x)
         iscale-y (:inverse scale-y)
         grid (grid/grid grid size)
         hsize (/ size 2.0)
-        coords (distinct (for [x (range 0 w hsize)
-                               y (range 0 h hsize)
-                               :let [[^double mx ^double my] (grid/coords->mid grid [x y])]]
-                           [(iscale-x (/ mx w)) (iscale-y (/ my h))]))]
-
-    (common/do-graph (assoc chart-data :oversize 0) true
-                     (c2d/set-color c color)
-                     (doseq [[x y] coords
-                             :let [xx (* w ^double (scale-x x))
-                                   yy (* h ^double (scale-y y))
-                                   v (f (v/vec2 x y))
-                                   len (* scale size (wrap :exp (v/mag v)))]] 
-                       (-> c
-                           (c2d/push-matrix)
-                           (c2d/translate xx yy)
-                           (c2d/ellipse 0 0 3 3 false)
-                           (c2d/rotate (v/heading v))
-                           (c2d/line 0 0 len 0))
-                       (when (> len 2.0)
-                         (c2d/line c len 0 (- len 2.0) -2.0)
-                         (c2d/line c len 0 (- len 2.0) 2.0))
-                       (c2d/pop-matrix c)))))
+        coords (into [] (distinct) (for [x (range 0 w hsize)
+                                         y (range 0 h hsize)
+                                         :let [[^double mx ^double my] (grid/coords->mid grid [x y])]]
+                                     [(iscale-x (/ mx w)) (iscale-y (/ my h))]))
+        arrow (fn [[x y]]
+                (let [v (f (v/vec2 x y))]
+                  [(* w ^double (scale-x x))
+                   (* h ^double (scale-y y))
+                   (v/heading v)
+                   (* scale size (wrap :exp (v/mag v)))]))]
+
+    (progressive-graph (assoc chart-data :oversize 0) true progressive
+                       (fn [c {:keys [pass passes mapper stop?]}]
+                         (c2d/set-color c color)
+                         (doseq [chunk (mapper #(when-not (stop?) (mapv arrow %))
+                                               (partition-all pass-chunk (pass-subset coords passes pass)))
+                                 [xx yy heading ^double len] chunk]
+                           (-> c
+                               (c2d/push-matrix)
+                               (c2d/translate xx yy)
+                               (c2d/ellipse 0 0 3 3 false)
+                               (c2d/rotate heading)
+                               (c2d/line 0 0 len 0))
+                           (when (> len 2.0)
+                             (c2d/line c len 0 (- len 2.0) -2.0)
+                             (c2d/line c len 0 (- len 2.0) 2.0))
+                           (c2d/pop-matrix c))))))
 
 ;;
 
@@ -209,19 +316,35 @@
 
 (defmethod common/data-extent :trace [_ data c] (common/data-extent :complex data c))
 
-(defmethod common/render-graph :trace [_ [f coords] {:keys [^double step color ^double length]} {:keys [^int w ^int h x y] :as chart-data}]
+(defn- trace-path
+  "Screen positions of `length` consecutive steps starting from `v`."
+  [f v length step w h scale-x scale-y]
+  (let [length (long length)
+        step (double step)
+        w (double w)
+        h (double h)]
+    (loop [v v
+           i 0
+           res (transient [])]
+      (if (< i length)
+        (let [[x y] v
+              nv (f v)]
+          (recur (v/add v (v/mult nv (* (wrap :exp (v/mag nv)) step)))
+                 (inc i)
+                 (conj! res (v/vec2 (* w ^double (scale-x x)) (* h ^double (scale-y y))))))
+        (persistent! res)))))
+
+(defmethod common/render-graph :trace [_ [f coords] {:keys [^double step color ^double length progressive]} {:keys [^int w ^int h x y] :as chart-data}]
   (let [scale-x (:scale x)
-        scale-y (:scale y)]
-
-    (common/do-graph (assoc chart-data :oversize 0) true
-      (c2d/set-color c color)
-      
-      (doseq [v coords
-              :let [p (take length
-                            (iterate (fn [v]
-                                       (let [nv (f v)]
-                                         (v/add v (v/mult nv (* (wrap :exp (v/mag nv)) step))))) v))]]
-        (doseq [[x y] p]
-          (c2d/point c (* w ^double (scale-x x)) (* h ^double (scale-y y))))))))
+        scale-y (:scale y)
+        length (long length)]
+
+    (progressive-graph (assoc chart-data :oversize 0) true progressive
+                       (fn [c {:keys [pass passes mapper stop?]}]
+                         (c2d/set-color c color)
+                         (doseq [p (mapper #(when-not (stop?) (trace-path f % length step w h scale-x scale-y))
+                                           (pass-subset coords passes pass))
+                                 [x y] p]
+                           (c2d/point c x y))))))
 
 (m/unuse-primitive-operators)
@@ -5,7 +5,9 @@
             [clojure2d.core :as c2d]
             [clojure2d.protocols :as p]
             [fastmath.core :as m]
-            [fastmath.vector :as v]))
+            [fastmath.vector :as v])
+  (:import [java.awt Image Rectangle]
+           [java.awt.image BufferedImage ColorModel Raster RenderedImage WritableRaster]))
 
 (set! *warn-on-reflection* true)
 (set! *unchecked-math* :warn-on-boxed)
@@ -28,8 +30,26 @@
        (c2d/image ~canv ~px ~py)
        (c2d/pop-matrix)))
 
+(defn- tile-viewport
+  "Part of the tile seen from `[px py]` position in current coordinates (tile is placed at [0,0] on the device)."
+  [c [tw th] px py]
+  (let [[^double dx ^double dy] (c2d/transform c px py)]
+    [(- dx) (- dy) tw th]))
+
+(defn- viewport-visible?
+  "Is any part of `w`x`h` chart (with default oversize) visible in the viewport?"
+  [[^double vx ^double vy ^double vw ^double vh] ^double w ^double h]
+  (let [margin (/ common/default-oversize 2.0)]
+    (and (< vx (+ w margin)) (< (- margin) (+ vx vw))
+         (< vy (+ h margin)) (< (- margin) (+ vy vh)))))
+
+;; side chart size as seen on the screen
+(defn- side-screen-size
+  [orientation ssize size]
+  (if (#{:left :right} orientation) [size ssize] [ssize size]))
+
 (defn- place-sides
-  [c series scale [^int tx ^int ty] orientation axis bands]
+  [c series scale [^int tx ^int ty] orientation axis bands tile]
   (let [x? (= :x axis)]
     (doseq [[pos srs] series
             :let [[start ssize] (bands pos)
@@ -37,12 +57,21 @@
       (c2d/push-matrix c)
       (doseq [{:keys [^double size series]} srs]
         (doseq [[t d conf] series
+                :let [;; canvas position (see anchor below), used to clip to the tile
+                      [px py] (case orientation
+                                :top [imgx (- imgy size)]
+                                :left [(- imgx size) imgy]
+                                [imgx imgy])
+                      viewport (when tile (tile-viewport c tile px py))
+                      [sw sh] (side-screen-size orientation ssize size)]
+                :when (or (not viewport) (viewport-visible? viewport sw sh))
                 :let [sx (scale pos)
                       ;; construct y scale
                       sy (or (:scale-y conf) (s/scale-map [:linear] {:domain (-> conf :extent :y second)}))
                       ;; render graph
                       {:keys [canvas fixed? anchor]} (common/render-graph t d conf
-                                                                          {:orientation orientation :w ssize :h size :x sx :y sy})
+                                                                          (cond-> {:orientation orientation :w ssize :h size :x sx :y sy}
+                                                                            viewport (assoc :viewport viewport)))
                       ;; axis has already correct anchor
                       anchor (if fixed? anchor
                                  (case orientation
@@ -54,14 +83,19 @@
       (c2d/pop-matrix c))
     c))
 
+(defn- inner-layout
+  "Sizes of sides and inner part of the lattice: `[l r t b ww hh]`"
+  [srs {:keys [^int width ^int height]}]
+  (let [[^long l ^long r ^long t ^long b] (map (comp get-max-size srs) [:left :right :top :bottom])]
+    [l r t b (- width l r) (- height t b)]))
+
 ;; inner part
 (defn- render-lattice-inner
   [c {:keys [rows cols series extents scales left right top bottom] :as srs}
-   {:keys [padding-in padding-out ^int width ^int height]
-    :or {padding-in 0.05 padding-out 0.0}}]   
-  (let [[^long l ^long r ^long t ^long b] (map (comp get-max-size srs) [:left :right :top :bottom])
-        ww (- width l r)
-        hh (- height t b)
+   {:keys [padding-in padding-out ::tile ::cache]
+    :or {padding-in 0.05 padding-out 0.0}
+    :as conf}]   
+  (let [[l _ t _ ww hh] (inner-layout srs conf)
         bands-conf {:padding-in padding-in :padding-out padding-out}
         bands-x (common/bands->positions-size (s/bands bands-conf cols) ww)
         bands-y-raw (s/bands bands-conf (reverse (range rows)))
@@ -75,86 +109,192 @@
     ;; draw lattice
     (doseq [[^int x ^int y :as id] (keys series)
             :let [[start-x w] (bands-x x)
-                  [start-y h] (bands-y y)]]
+                  [start-y h] (bands-y y)
+                  viewport (when tile (tile-viewport c tile start-x (inc start-y)))]]
 
       ;; shades
       (when (odd? (+ x y))
         (c2d/set-color c :black 20)
         (c2d/rect c start-x start-y w h))
       
-      (doseq [[t d conf] (series id) 
+      (doseq [[layer [t d conf]] (map-indexed vector (series id))
+              :when (or (not viewport) (viewport-visible? viewport w h))
               :let [sx (scale-x x)
                     sy (scale-y y)
                     ex (-> extents :x (get x) second)
                     ey (-> extents :y (get y) second)
-                    {:keys [canvas anchor]} (common/render-graph t d conf {:w w :h h :x sx :y sy :extent {:x ex :y ey}})]]
+                    {:keys [canvas anchor]} (common/render-graph t d conf (cond-> {:w w :h h :x sx :y sy :extent {:x ex :y ey}}
+                                                                            viewport (assoc :viewport viewport
+                                                                                            :cache cache
+                                                                                            :cache-key [id layer])))]]
 
         (place-image c canvas (v/add anchor [0 1]) start-x start-y)
         
         (when-let [label (:label conf)]
-          (let [lc (common/render-label label w)]
+          (let [lc (common/cached cache [id layer :label] #(common/render-label label w))]
             (c2d/image c lc start-x start-y)))))
 
     ;; draw sides/axes
     (-> c
-        (place-sides left scale-y [-1 0] :left :y bands-y)
-        (place-sides top scale-x [0 -1] :top :x bands-x)
+        (place-sides left scale-y [-1 0] :left :y bands-y tile)
+        (place-sides top scale-x [0 -1] :top :x bands-x tile)
         (c2d/push-matrix)
         (c2d/translate ww 0)
-        (place-sides right scale-y [1 0] :right :y bands-y)
+        (place-sides right scale-y [1 0] :right :y bands-y tile)
         (c2d/pop-matrix)
         (c2d/push-matrix)
         (c2d/translate 0 hh)
-        (place-sides bottom scale-x [0 1] :bottom :x bands-x)
-        (c2d/pop-matrix))
-
-    [l r t b ww hh]))
+        (place-sides bottom scale-x [0 1] :bottom :x bands-x tile)
+        (c2d/pop-matrix))))
 
-(defn- place-label
-  [c label px py conf o w h]
+(defn- lattice-label
+  [label conf o w h]
   (when label
-    (let [{:keys [canvas anchor]} (common/render-graph :label label (:conf label)
-                                                       (assoc conf :orientation o :w w :h h))]
-      (place-image c canvas anchor px py))))
+    (common/render-graph :label label (:conf label) (assoc conf :orientation o :w w :h h))))
 
 ;; outer part (labels, legends, gradients)
+(defn- lattice-layout
+  "Position of the inner part, legend and labels (rendered) of the lattice."
+  [{:keys [labels legend] :or {labels {}} :as srs}
+   {:keys [^int width ^int height ^int border]
+    :or {width 800 height 800 border 10}
+    :as conf}]
+  (let [{:keys [left right top bottom]} labels
+        [^int l ^int r ^int t ^int b] (map (comp #(or % 0) :block-size) [left right top bottom])
+        
+        legend (when legend (ax/legends legend))
+        ^int legend-width (or (:block-size legend) 0)
+        
+        tl (+ border l)
+        tt (+ border t)
+        ww (- width tl r border legend-width)
+        hh (- height tt b border)
+        inner-conf (assoc conf :width ww :height hh)
+        
+        ;; take inner chart position and sides
+        [^int il ^int _ir ^int it ^int _ib ^int iw ^int ih] (inner-layout srs inner-conf)]
+
+    {:tl tl
+     :tt tt
+     :inner-conf inner-conf
+     :legend (when legend [legend (+ tl ww) (+ it tt)])
+     :labels [[(lattice-label left conf :left ih l) border (+ it tt)]
+              [(lattice-label top conf :top iw t) (+ il tl) border]
+              [(lattice-label bottom conf :bottom iw b) (+ il tl) (+ tt hh)]
+              [(lattice-label right conf :right ih r) (+ tl ww legend-width) (+ it tt)]]}))
+
+(defn- draw-lattice
+  [c srs
+   {:keys [^int width ^int height background]
+    :or {width 800 height 800 background 0xe8e8f0}}
+   {:keys [tl tt inner-conf legend labels]}]
+    
+  (if (satisfies? p/ImageProto background)
+    (c2d/image c background 0 0 width height)
+    (c2d/set-background c background))
+
+  (c2d/push-matrix c)
+  (c2d/translate c tl tt)
+  (render-lattice-inner c srs inner-conf)
+  (c2d/pop-matrix c)
+
+  ;; legend and labels
+  (when-let [[{:keys [canvas anchor]} px py] legend]
+    (place-image c canvas anchor px py))
+  (doseq [[{:keys [canvas anchor] :as label} px py] labels
+          :when label]
+    (place-image c canvas anchor px py))
+
+  c)
+
 (defn render-lattice
   ([srs] (render-lattice srs {}))
-  ([{:keys [labels legend] :or {labels {}} :as srs}
-    {:keys [^int width ^int height background ^int border]
-     :or {width 800 height 800 background 0xe8e8f0 border 10}
-     :as conf}]
-
-   (let [{:keys [left right top bottom]} labels
-         [^int l ^int r ^int t ^int b] (map (comp #(or % 0) :block-size) [left right top bottom])
-         
-         legend (when legend (ax/legends legend))
-         ^int legend-width (or (:block-size legend) 0)
-         
-         tl (+ border l)
-         tt (+ border t)
-         ww (- width tl r border legend-width)
-         hh (- height tt b border)]
-     (c2d/with-canvas [c (c2d/canvas width height)]
-       
-       (if (satisfies? p/ImageProto background)
-         (c2d/image c background)
-         (c2d/set-background c background))
-
-       (c2d/push-matrix c)
-       (c2d/translate c tl tt)
-
-       ;; labels
-       ;; take inner chart position and sides
-       (let [[^int il ^int _ir ^int it ^int _ib ^int iw ^int ih] (render-lattice-inner c srs (assoc conf :width ww :height hh))]
-         
-         (c2d/pop-matrix c)
-         (when legend (place-image c (:canvas legend) (:anchor legend) (+ tl ww) (+ it tt)))
-         (place-label c left border (+ it tt) conf :left ih l)
-         (place-label c top (+ il tl) border conf :top iw t)
-         (place-label c bottom (+ il tl) (+ tt hh) conf :bottom iw b)
-         (place-label c right (+ tl ww legend-width) (+ it tt) conf :right ih r)) 
-
-       c))))
+  ([srs {:keys [^int width ^int height]
+         :or {width 800 height 800}
+         :as conf}]
+   (c2d/with-canvas [c (c2d/canvas width height)]
+     (draw-lattice c srs conf (lattice-layout srs conf)))))
+
+;; tiled rendering
+
+(defn- chart-types
+  "All chart types used in the lattice and on its sides."
+  [{:keys [series] :as srs}]
+  (concat (map first (apply concat (vals series)))
+          (for [side [:left :right :top :bottom]
+                blocks (vals (srs side))
+                {:keys [series]} blocks
+                [t] series]
+            t)))
+
+(defn- render-tile
+  "Render `tw`x`th` part of the lattice starting at `[x y]` pixel. Returns raster placed at this position."
+  [srs conf layout x y tw th]
+  (let [canvas (c2d/canvas tw th)]
+    (c2d/with-canvas [c canvas]
+      (c2d/translate c (- ^long x) (- ^long y))
+      (draw-lattice c srs conf (assoc-in layout [:inner-conf ::tile] [tw th])))
+    (.createTranslatedChild (.getRaster ^BufferedImage (c2d/get-image canvas)) (int x) (int y))))
+
+(defn render-lattice-tiled
+  "Create lazy image of the lattice divided into `:tile-width` x `:tile-height` tiles (default: 512x512).
+
+  Tiles are rendered when pixels are requested (eg. by image encoder). Every chart is clipped to the tile, values depending on the whole chart (like extent) are calculated once.
+  Only tiles covering last requested area are kept: single tile when encoder writes tile by tile (TIFF), row of tiles when it writes whole lines (PNG).
+  Charts which need full size buffer (see `common/untileable-charts`) are rejected."
+  ([srs] (render-lattice-tiled srs {}))
+  ([srs {:keys [^int width ^int height ^int tile-width ^int tile-height]
+         :or {width 800 height 800 tile-width 512 tile-height 512}
+         :as conf}]
+   (let [untileable (distinct (filter common/untileable-charts (chart-types srs)))
+         _ (assert (empty? untileable) (str "Charts can't be rendered in tiled mode: " (vec untileable)))
+         ^ColorModel cm (.getColorModel ^BufferedImage (c2d/get-image (c2d/canvas 1 1)))
+         layout (-> (lattice-layout srs conf)
+                    (assoc-in [:inner-conf ::cache] (atom {})))
+         tiles (atom {})
+         tile (fn [[^long tx ^long ty :as id]]
+                (or (@tiles id)
+                    (let [raster (render-tile srs conf layout (* tx tile-width) (* ty tile-height) tile-width tile-height)]
+                      (swap! tiles assoc id raster)
+                      raster)))
+         tile-ids (fn [^Rectangle r]
+                    (for [ty (range (quot (.y r) tile-height) (inc (quot (dec (+ (.y r) (.height r))) tile-height)))
+                          tx (range (quot (.x r) tile-width) (inc (quot (dec (+ (.x r) (.width r))) tile-width)))]
+                      [tx ty]))]
+     (reify RenderedImage
+       (getSources [_] nil)
+       (getProperty [_ _] Image/UndefinedProperty)
+       (getPropertyNames [_] nil)
+       (getColorModel [_] cm)
+       (getSampleModel [_] (.createCompatibleSampleModel cm tile-width tile-height))
+       (getWidth [_] width)
+       (getHeight [_] height)
+       (getMinX [_] 0)
+       (getMinY [_] 0)
+       (getNumXTiles [_] (quot (dec (+ width tile-width)) tile-width))
+       (getNumYTiles [_] (quot (dec (+ height tile-height)) tile-height))
+       (getMinTileX [_] 0)
+       (getMinTileY [_] 0)
+       (getTileWidth [_] tile-width)
+       (getTileHeight [_] tile-height)
+       (getTileGridXOffset [_] 0)
+       (getTileGridYOffset [_] 0)
+       (getTile [_ tx ty]
+         (let [id [(long tx) (long ty)]]
+           (swap! tiles select-keys [id])
+           (tile id)))
+       (getData [this] (.getData this (Rectangle. 0 0 width height)))
+       (getData [_ ^Rectangle r]
+         (let [ids (tile-ids r)
+               ^WritableRaster res (-> (.createCompatibleWritableRaster cm (.width r) (.height r))
+                                       (.createWritableTranslatedChild (.x r) (.y r)))]
+           (swap! tiles select-keys ids)
+           (doseq [id ids]
+             (.setRect res ^Raster (tile id)))
+           res))
+       (copyData [this ^WritableRaster raster]
+         (let [^WritableRaster res (or raster (.createCompatibleWritableRaster cm width height))]
+           (.setRect res (.getData this (.getBounds res)))
+           res))))))
 
 (m/unuse-primitive-operators)